@@ -0,0 +1,47 @@
+package com.gomes.nowplaying;
+
+import android.util.LruCache;
+
+/**
+ * An in-memory cache of encoded artwork, shared by the current track and the
+ * play queue so that the same image is only ever encoded once
+ *
+ * Entries are bounded by their total size in bytes rather than their count,
+ * since artwork can vary from a few KB to a few MB
+ */
+class ArtworkCache {
+    private static final int MAX_SIZE_BYTES = 8 * 1024 * 1024;
+
+    /** Produces encoded artwork on a cache miss; may return null */
+    interface Loader {
+        byte[] load();
+    }
+
+    private final LruCache<String, byte[]> cache = new LruCache<String, byte[]>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    /**
+     * Returns the artwork cached against `key`, loading and caching it first
+     * if it is not already present
+     *
+     * Failed loads are not cached, so will be retried on the next request
+     */
+    byte[] get(String key, Loader loader) {
+        if (key == null) return loader.load();
+
+        byte[] artwork = cache.get(key);
+        if (artwork == null) {
+            artwork = loader.load();
+            if (artwork != null) cache.put(key, artwork);
+        }
+        return artwork;
+    }
+
+    void remove(String key) {
+        if (key != null) cache.remove(key);
+    }
+}
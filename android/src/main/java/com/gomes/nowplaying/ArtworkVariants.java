@@ -0,0 +1,209 @@
+package com.gomes.nowplaying;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Produces artwork at a handful of fixed sizes, each generated only when it is
+ * first asked for and then kept in the artwork cache
+ *
+ * Track artwork registers its source here under a key; the variants of that
+ * source can then be requested by key alone, for as long as the source is
+ * remembered. Sources hold full-size bitmaps, so like the cache they are
+ * bounded by bytes rather than count. Opaque images are encoded as JPEG,
+ * anything with transparency as PNG
+ */
+class ArtworkVariants {
+    private static final String TAG = "NowPlayingArtwork";
+    private static final int MAX_SOURCE_BYTES = 16 * 1024 * 1024;
+
+    enum Variant {
+        SMALL(96, 80),
+        MEDIUM(320, 85),
+        LARGE(1024, 90);
+
+        final int size;
+        final int quality;
+
+        Variant(int size, int quality) {
+            this.size = size;
+            this.quality = quality;
+        }
+
+        /** Returns the variant named `name`, or `fallback` if there is none */
+        static Variant from(String name, Variant fallback) {
+            for (Variant variant : values()) {
+                if (variant.name().equalsIgnoreCase(name)) return variant;
+            }
+            return fallback;
+        }
+    }
+
+    /** Provides the original artwork, ideally no larger than `size` pixels square */
+    interface Source {
+        Bitmap load(int size);
+
+        /** true if this is known to provide the same artwork as `other` */
+        default boolean isSameAs(Source other) {
+            return false;
+        }
+
+        /** The bytes held on to by this source, while it is registered */
+        default int byteCount() {
+            return 0;
+        }
+    }
+
+    /** The artwork in `bitmap` */
+    static Source of(Bitmap bitmap) {
+        return new BitmapSource(bitmap);
+    }
+
+    /** The local artwork at `uri` */
+    static Source of(Context context, Uri uri) {
+        return new UriSource(context, uri);
+    }
+
+    private static class Registration {
+        final Source source;
+        final int version;
+
+        Registration(Source source, int version) {
+            this.source = source;
+            this.version = version;
+        }
+    }
+
+    private final ArtworkCache cache;
+    private final LruCache<String, Registration> sources = new LruCache<String, Registration>(MAX_SOURCE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Registration value) {
+            return Math.max(1, value.source.byteCount());
+        }
+    };
+    private int nextVersion = 1;
+
+    ArtworkVariants(ArtworkCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the source for `key`, returning the version of the artwork now
+     * registered under it
+     *
+     * Tracks from the same album share a key, so variants are only discarded,
+     * and the version bumped, when the key is new or its artwork has changed
+     */
+    synchronized int register(String key, Source source) {
+        final Registration previous = sources.get(key);
+        if (previous != null && previous.source.isSameAs(source)) {
+            return previous.version;
+        }
+
+        final Registration registration = new Registration(source, nextVersion++);
+        sources.put(key, registration);
+        for (Variant variant : Variant.values()) {
+            cache.remove(key + "@" + variant.name());
+        }
+        return registration.version;
+    }
+
+    /**
+     * Returns the `variant` of the artwork registered under `key`, or null if
+     * there is none and it has not been generated before
+     */
+    byte[] get(String key, Variant variant) {
+        final Registration registration = sources.get(key);
+        return get(key, variant, registration != null ? registration.source : null);
+    }
+
+    /** As above, but from an explicit `source`; a null `key` is never cached */
+    byte[] get(String key, Variant variant, Source source) {
+        return cache.get(key != null ? key + "@" + variant.name() : null, () -> {
+            if (source == null) return null;
+            return encode(source.load(variant.size), variant);
+        });
+    }
+
+    private static class BitmapSource implements Source {
+        private final Bitmap bitmap;
+
+        BitmapSource(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public Bitmap load(int size) {
+            return bitmap;
+        }
+
+        // every update carries a fresh copy of the bitmap, so compare pixels
+        @Override
+        public boolean isSameAs(Source other) {
+            if (!(other instanceof BitmapSource)) return false;
+            final Bitmap otherBitmap = ((BitmapSource) other).bitmap;
+            return bitmap == otherBitmap || bitmap.sameAs(otherBitmap);
+        }
+
+        @Override
+        public int byteCount() {
+            return bitmap.getAllocationByteCount();
+        }
+    }
+
+    private static class UriSource implements Source {
+        private final Context context;
+        private final Uri uri;
+
+        UriSource(Context context, Uri uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        public Bitmap load(int size) {
+            return LocalArtworkLoader.load(context, uri, size);
+        }
+
+        @Override
+        public boolean isSameAs(Source other) {
+            return other instanceof UriSource && uri.equals(((UriSource) other).uri);
+        }
+    }
+
+    private static byte[] encode(Bitmap bitmap, Variant variant) {
+        if (bitmap == null) return null;
+
+        try {
+            final Bitmap scaled = scale(bitmap, variant.size);
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            if (scaled.hasAlpha()) {
+                scaled.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            } else {
+                scaled.compress(Bitmap.CompressFormat.JPEG, variant.quality, stream);
+            }
+            if (scaled != bitmap) scaled.recycle();
+            return stream.toByteArray();
+        } catch (Exception e) {
+            Log.e(TAG, "Error encoding " + variant + " artwork", e);
+            return null;
+        }
+    }
+
+    private static Bitmap scale(Bitmap bitmap, int size) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (width <= size && height <= size) return bitmap;
+
+        final float scale = Math.min((float) size / width, (float) size / height);
+        return Bitmap.createScaledBitmap(
+                bitmap,
+                Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)),
+                true);
+    }
+}
@@ -0,0 +1,71 @@
+package com.gomes.nowplaying;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Size;
+
+/**
+ * Loads artwork that players expose by URI rather than as an embedded bitmap
+ *
+ * Only on-device URIs are handled here; anything remote is left to the Dart
+ * side. Images are decoded straight from the stream at (no more than) the
+ * requested size, so a full-size original is never held in memory
+ */
+class LocalArtworkLoader {
+    private static final String TAG = "NowPlayingArtwork";
+
+    private LocalArtworkLoader() {}
+
+    static boolean isLocal(Uri uri) {
+        if (uri == null) return false;
+
+        final String scheme = uri.getScheme();
+        return ContentResolver.SCHEME_CONTENT.equals(scheme)
+                || ContentResolver.SCHEME_FILE.equals(scheme)
+                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme);
+    }
+
+    /**
+     * Returns the artwork at `uri`, fitted within `size` x `size` pixels, or
+     * null if it's not local or cannot be read
+     */
+    static Bitmap load(Context context, Uri uri, int size) {
+        if (context == null || !isLocal(uri)) return null;
+
+        final ContentResolver resolver = context.getContentResolver();
+
+        // providers can often serve a ready-made thumbnail far more cheaply
+        // than we can decode the original
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            try {
+                return resolver.loadThumbnail(uri, new Size(size, size), null);
+            } catch (Exception e) {
+                Log.d(TAG, "No thumbnail for " + uri + ", decoding instead");
+            }
+        }
+
+        try {
+            final ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+            return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                // software bitmaps, so that they can be compressed for the channel
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+
+                final int width = info.getSize().getWidth();
+                final int height = info.getSize().getHeight();
+                if (width > size || height > size) {
+                    final float scale = Math.min((float) size / width, (float) size / height);
+                    decoder.setTargetSize(
+                            Math.max(1, Math.round(width * scale)),
+                            Math.max(1, Math.round(height * scale)));
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading artwork from " + uri, e);
+            return null;
+        }
+    }
+}
@@ -14,6 +14,7 @@ import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 /**
@@ -47,10 +48,12 @@ public class NowPlayingListenerService extends NotificationListenerService {
 
     private Map<String, MediaSession.Token> tokens = new HashMap<>();
     private boolean isConnected = false;
+    private SourcePackageFilter filter;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        filter = new SourcePackageFilter(this, this::dropRejectedSessions);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             final String CHANNEL_ID = "nowplaying_service_channel";
             NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
@@ -131,6 +134,10 @@ public class NowPlayingListenerService extends NotificationListenerService {
             }
 
             for (StatusBarNotification sbn : notifications) {
+                if (!filter.accepts(sbn.getPackageName())) {
+                    continue;
+                }
+
                 final MediaSession.Token token = getTokenIfAvailable(sbn);
                 if (token != null) {
                     try {
@@ -159,6 +166,26 @@ public class NowPlayingListenerService extends NotificationListenerService {
         return pausedToken; // may also be null
     }
 
+    /**
+     * Tell the plugin to let go of any session it's tracking whose package
+     * has just been filtered out
+     */
+    private void dropRejectedSessions() {
+        final Iterator<Map.Entry<String, MediaSession.Token>> entries = tokens.entrySet().iterator();
+        while (entries.hasNext()) {
+            final MediaSession.Token token = entries.next().getValue();
+            try {
+                final MediaController controller = new MediaController(this, token);
+                if (!filter.accepts(controller.getPackageName())) {
+                    entries.remove();
+                    sendData(token, null, ACTION_REMOVED);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error checking session against filter", e);
+            }
+        }
+    }
+
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
         if (!isConnected) {
@@ -166,6 +193,11 @@ public class NowPlayingListenerService extends NotificationListenerService {
             return;
         }
 
+        // reject uninteresting players before doing any work for them
+        if (!filter.accepts(sbn.getPackageName())) {
+            return;
+        }
+
         final MediaSession.Token token = getTokenIfAvailable(sbn);
         if (token != null) {
             tokens.put(sbn.getKey(), token);
@@ -190,7 +222,9 @@ public class NowPlayingListenerService extends NotificationListenerService {
             final Intent intent = new Intent(NowPlayingPlugin.ACTION);
             intent.putExtra(FIELD_ACTION, action);
             intent.putExtra(FIELD_TOKEN, token);
-            intent.putExtra(FIELD_ICON, sbn.getNotification().getSmallIcon());
+            if (sbn != null) {
+                intent.putExtra(FIELD_ICON, sbn.getNotification().getSmallIcon());
+            }
             sendBroadcast(intent);
             Log.d(TAG, "Broadcast sent: " + action);
         } catch (Exception e) {
@@ -214,6 +248,7 @@ public class NowPlayingListenerService extends NotificationListenerService {
         Log.d(TAG, "NowPlayingListenerService destroyed");
         tokens.clear();
         isConnected = false;
+        filter.close();
         super.onDestroy();
     }
 
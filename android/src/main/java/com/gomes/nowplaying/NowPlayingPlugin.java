@@ -2,6 +2,8 @@ package com.gomes.nowplaying;
 
 import androidx.annotation.NonNull;
 
+import android.app.Activity;
+import android.app.Application;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -13,11 +15,14 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.VectorDrawable;
 import android.graphics.drawable.Icon;
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.session.MediaController;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
@@ -33,7 +38,10 @@ import io.flutter.plugin.common.MethodChannel.Result;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** NowPlayingPlugin */
 public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, ActivityAware {
@@ -49,6 +57,10 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     private static final String COMMAND_TRACK = "track";
     private static final String COMMAND_ENABLED = "isEnabled";
     private static final String COMMAND_REQUEST_PERMISSIONS = "requestPermissions";
+    private static final String COMMAND_QUEUE = "queue";
+    private static final String COMMAND_QUEUE_ARTWORK = "queueArtwork";
+    private static final String COMMAND_ARTWORK = "artwork";
+    private static final String COMMAND_SET_SOURCE_FILTER = "setSourceFilter";
 
     private static final int STATE_PLAYING = 0;
     private static final int STATE_PAUSED = 1;
@@ -57,15 +69,71 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
 
     private static final int MAX_SAME_STATE_COUNT = 10;
     private static final int POLLING_INTERVAL_MS = 500;
+    private static final int BACKGROUND_POLLING_INTERVAL_MS = 2000;
+    private static final int DEFAULT_QUEUE_PAGE_SIZE = 50;
 
     private MethodChannel channel;
     private ChangeBroadcastReceiver changeBroadcastReceiver;
     private Context context;
+    private Context applicationContext;
+    private Activity activity;
+    private volatile boolean isForeground = true;
     private final Object trackDataLock = new Object();
     private Map<String, Object> trackData = new HashMap<>();
+    private boolean hasPendingTrack = false;
+    private volatile String deferredArtworkId;
+    private volatile MediaSession.Token currentToken;
+    private volatile Icon currentIcon;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private Thread pollingThread;
     private volatile boolean isReceiverRegistered = false;
+    private final ArtworkVariants artworkVariants = new ArtworkVariants(new ArtworkCache());
+    private final ExecutorService artworkExecutor = Executors.newSingleThreadExecutor();
+    private final Object queueLock = new Object();
+    private final NowPlayingQueue queue = new NowPlayingQueue();
+    private MediaController queueController;
+    private String queueSource;
+    private List<MediaSession.QueueItem> pendingQueue;
+    private final MediaController.Callback queueCallback = new MediaController.Callback() {
+        @Override
+        public void onQueueChanged(List<MediaSession.QueueItem> items) {
+            updateQueue(items);
+        }
+
+        @Override
+        public void onSessionDestroyed() {
+            unwatchQueue(null);
+        }
+    };
+    private final Application.ActivityLifecycleCallbacks lifecycleCallbacks =
+            new Application.ActivityLifecycleCallbacks() {
+        // started/stopped rather than resumed/paused: a paused activity may
+        // still be on screen, e.g. behind a dialog
+        @Override
+        public void onActivityStarted(Activity activity) {
+            setForeground(true);
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            setForeground(false);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityResumed(Activity activity) {}
+
+        @Override
+        public void onActivityPaused(Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {}
+    };
 
     @Override
     public void onMethodCall(@NonNull MethodCall call, @NonNull Result result) {
@@ -93,6 +161,48 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
                 requestServiceUpdate();
             }
             result.success(true);
+        } else if (COMMAND_QUEUE.equals(call.method)) {
+            // Dart ints arrive as Integer or Long, depending on their size
+            final Number offset = call.argument("offset");
+            final Number limit = call.argument("limit");
+            final Map<String, Object> page = new HashMap<>();
+            synchronized (queueLock) {
+                page.put("version", queue.version());
+                page.put("items", queue.page(
+                        offset != null ? clampToInt(offset) : 0,
+                        limit != null ? clampToInt(limit) : DEFAULT_QUEUE_PAGE_SIZE));
+            }
+            result.success(page);
+        } else if (COMMAND_QUEUE_ARTWORK.equals(call.method)) {
+            final Number id = call.argument("id");
+            if (id == null) {
+                result.error("ARGUMENT_ERROR", "Queue item id is required", null);
+                return;
+            }
+            final ArtworkVariants.Variant variant =
+                    ArtworkVariants.Variant.from(call.argument("size"), ArtworkVariants.Variant.MEDIUM);
+            artworkExecutor.execute(() -> {
+                final byte[] artwork = extractQueueArtwork(id.longValue(), variant);
+                mainHandler.post(() -> result.success(artwork));
+            });
+        } else if (COMMAND_ARTWORK.equals(call.method)) {
+            final String key = call.argument("key");
+            final ArtworkVariants.Variant variant =
+                    ArtworkVariants.Variant.from(call.argument("size"), ArtworkVariants.Variant.LARGE);
+            if (key == null) {
+                result.error("ARGUMENT_ERROR", "Artwork key is required", null);
+                return;
+            }
+            artworkExecutor.execute(() -> {
+                final byte[] artwork = artworkVariants.get(key, variant);
+                mainHandler.post(() -> result.success(artwork));
+            });
+        } else if (COMMAND_SET_SOURCE_FILTER.equals(call.method)) {
+            final List<String> allowed = call.argument("allowed");
+            final List<String> denied = call.argument("denied");
+            SourcePackageFilter.save(applicationContext, allowed, denied);
+            requestServiceUpdate();
+            result.success(true);
         } else {
             result.notImplemented();
         }
@@ -111,6 +221,7 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     @Override
     public void onDetachedFromActivity() {
         detach();
+        unwatchQueue(null);
     }
 
     @Override
@@ -121,6 +232,9 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     private void attach(ActivityPluginBinding binding) {
         Log.d(TAG, "Attaching to activity");
         context = binding.getActivity();
+        activity = binding.getActivity();
+        activity.registerActivityLifecycleCallbacks(lifecycleCallbacks);
+        setForeground(true);
 
         // Only register receiver if not already registered
         if (!isReceiverRegistered) {
@@ -178,6 +292,11 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
         Log.d(TAG, "Detaching from activity");
         stopPolling();
 
+        if (activity != null) {
+            activity.unregisterActivityLifecycleCallbacks(lifecycleCallbacks);
+            activity = null;
+        }
+
         if (isReceiverRegistered && context != null && changeBroadcastReceiver != null) {
             try {
                 context.unregisterReceiver(changeBroadcastReceiver);
@@ -192,6 +311,84 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
         changeBroadcastReceiver = null;
     }
 
+    /**
+     * While the app is in the background nobody is rendering, so state is
+     * still tracked but artwork is deferred, and nothing is sent to Dart:
+     * changes are coalesced and delivered as a single snapshot on resume
+     */
+    private void setForeground(boolean foreground) {
+        // flipped under the lock so that no sendTrack can mark a pending track
+        // after it has been flushed; queue updates, like this, run on the main
+        // thread, so can't interleave with it
+        final boolean flushTrack;
+        synchronized (trackDataLock) {
+            if (isForeground == foreground) {
+                return;
+            }
+
+            isForeground = foreground;
+            flushTrack = foreground && hasPendingTrack;
+            if (flushTrack) hasPendingTrack = false;
+        }
+
+        Log.d(TAG, foreground ? "App resumed" : "App backgrounded");
+        if (foreground) {
+            flushPending(flushTrack);
+        }
+    }
+
+    private void flushPending(boolean flushTrack) {
+        if (flushTrack) {
+            flushTrack();
+        }
+
+        List<Map<String, Object>> ops = null;
+        int version = 0;
+        synchronized (queueLock) {
+            if (pendingQueue != null) {
+                ops = queue.update(pendingQueue);
+                version = queue.version();
+                pendingQueue = null;
+            }
+        }
+        if (ops != null) {
+            sendQueue(ops, version);
+        }
+    }
+
+    private void flushTrack() {
+        artworkExecutor.execute(() -> {
+            // the artwork is fetched off the main thread, but the track it
+            // joins is only read back on it, so that nothing newer that has
+            // been sent in the meantime is overwritten
+            final String artworkId = deferredArtworkId;
+            final Map<String, Object> artwork = new HashMap<>();
+            if (artworkId != null) {
+                addDeferredArtwork(artworkId, artwork);
+            }
+
+            mainHandler.post(() -> {
+                synchronized (trackDataLock) {
+                    if (!isForeground) {
+                        hasPendingTrack = true;
+                        return;
+                    }
+                    if (trackData.isEmpty()) {
+                        sendTrack(null);
+                        return;
+                    }
+
+                    final Map<String, Object> data = new HashMap<>(trackData);
+                    if (data.get("id").equals(artworkId)) {
+                        data.putAll(artwork);
+                        deferredArtworkId = null;
+                    }
+                    sendTrack(data);
+                }
+            });
+        });
+    }
+
     private boolean isNotificationListenerServiceEnabled() {
         if (context == null) {
             return false;
@@ -214,6 +411,7 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
         Log.d(TAG, "Plugin attached to engine");
+        applicationContext = flutterPluginBinding.getApplicationContext();
         channel = new MethodChannel(flutterPluginBinding.getBinaryMessenger(), "gomes.com.es/nowplaying");
         channel.setMethodCallHandler(this);
     }
@@ -234,9 +432,11 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
 
             if (NowPlayingListenerService.ACTION_POSTED.equals(action)) {
                 startPolling(token, icon);
+                watchQueue(token);
             } else if (NowPlayingListenerService.ACTION_REMOVED.equals(action)) {
                 stopPolling();
                 finishPlaying(token);
+                unwatchQueue(token);
             }
         }
     }
@@ -247,6 +447,8 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
      */
     private void startPolling(MediaSession.Token token, Icon icon) {
         stopPolling();
+        currentToken = token;
+        currentIcon = icon;
 
         pollingThread = new Thread(() -> {
             Log.d(TAG, "Polling thread started");
@@ -273,7 +475,7 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
                         sameStateCount = 0;
                     }
 
-                    Thread.sleep(POLLING_INTERVAL_MS);
+                    Thread.sleep(isForeground ? POLLING_INTERVAL_MS : BACKGROUND_POLLING_INTERVAL_MS);
                 } catch (InterruptedException e) {
                     Log.d(TAG, "Polling thread interrupted");
                     break;
@@ -299,6 +501,126 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
         }
     }
 
+    /**
+     * Follow the play queue of the session behind `token`
+     *
+     * The queue is diffed on every change, so only the operations needed to
+     * bring the Dart side up to date are sent over the channel. The controller
+     * is built on the application context so that it, and the queue, survive
+     * the activity being recreated for configuration changes
+     */
+    private void watchQueue(MediaSession.Token token) {
+        if (applicationContext == null || token == null) {
+            return;
+        }
+        if (queueController != null && token.equals(queueController.getSessionToken())) {
+            return;
+        }
+
+        unwatchQueue(null);
+
+        try {
+            queueController = new MediaController(applicationContext, token);
+            queueController.registerCallback(queueCallback, mainHandler);
+
+            synchronized (queueLock) {
+                queueSource = queueController.getPackageName();
+            }
+            updateQueue(queueController.getQueue());
+        } catch (Exception e) {
+            Log.e(TAG, "Error watching queue", e);
+            queueController = null;
+        }
+    }
+
+    /**
+     * Stop following the play queue, if it belongs to the session behind
+     * `token`, or regardless if `token` is null
+     */
+    private void unwatchQueue(MediaSession.Token token) {
+        if (queueController == null) {
+            return;
+        }
+        if (token != null && !token.equals(queueController.getSessionToken())) {
+            return;
+        }
+
+        try {
+            queueController.unregisterCallback(queueCallback);
+        } catch (Exception e) {
+            Log.e(TAG, "Error unwatching queue", e);
+        }
+        queueController = null;
+
+        synchronized (queueLock) {
+            queueSource = null;
+        }
+        updateQueue(null);
+    }
+
+    private void updateQueue(List<MediaSession.QueueItem> items) {
+        List<Map<String, Object>> ops;
+        int version;
+        synchronized (queueLock) {
+            if (!isForeground) {
+                // coalesced into a single diff on resume
+                pendingQueue = items != null ? items : new ArrayList<>();
+                return;
+            }
+            pendingQueue = null;
+            ops = queue.update(items);
+            version = queue.version();
+        }
+        sendQueue(ops, version);
+    }
+
+    private static int clampToInt(Number number) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, number.longValue()));
+    }
+
+    private void sendQueue(List<Map<String, Object>> ops, int version) {
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        ArrayList<Object> arguments = new ArrayList<>();
+        arguments.add(ops);
+        arguments.add(version);
+
+        mainHandler.post(() -> {
+            if (channel != null) {
+                channel.invokeMethod(COMMAND_QUEUE, arguments);
+            }
+        });
+    }
+
+    private byte[] extractQueueArtwork(long queueId, ArtworkVariants.Variant variant) {
+        MediaSession.QueueItem item;
+        String source;
+        synchronized (queueLock) {
+            item = queue.find(queueId);
+            source = queueSource;
+        }
+        if (item == null) {
+            return null;
+        }
+
+        final MediaDescription description = item.getDescription();
+        // queue ids alone get reused for different media, so bitmap-only
+        // artwork without a media id is never cached
+        String key = null;
+        if (description.getIconUri() != null) {
+            key = description.getIconUri().toString();
+        } else if (description.getMediaId() != null) {
+            key = "queue:" + source + ":" + description.getMediaId() + ":" + queueId;
+        }
+        return artworkVariants.get(key, variant, size -> {
+            final Bitmap bitmap = description.getIconBitmap();
+            if (bitmap != null) return bitmap;
+            return LocalArtworkLoader.load(context, description.getIconUri(), size);
+        });
+    }
+
     void finishPlaying(MediaSession.Token token) {
         if (context == null) {
             return;
@@ -324,12 +646,22 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     }
 
     private void sendTrack(Map<String, Object> data) {
+        final boolean missingArtwork;
         synchronized (trackDataLock) {
             if (data == null) {
                 trackData.clear();
             } else {
                 trackData = data;
             }
+
+            if (!isForeground) {
+                hasPendingTrack = true;
+                return;
+            }
+
+            // a track whose artwork was deferred can arrive after the resume
+            // flush has already been and gone, so fetch its artwork now
+            missingArtwork = data != null && data.get("id").equals(deferredArtworkId);
         }
 
         ArrayList<Object> arguments = new ArrayList<>();
@@ -340,6 +672,10 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
                 channel.invokeMethod(COMMAND_TRACK, arguments);
             }
         });
+
+        if (missingArtwork) {
+            flushTrack();
+        }
     }
 
     private Map<String, Object> extractFieldsFor(MediaSession.Token token, Icon icon) {
@@ -387,22 +723,20 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
             data.put("position", playbackState.getPosition());
 
             if (state != STATE_STOPPED && !id.equals(lastId)) {
-                // do the onerous imagey stuff only if we're on a new paused or playing media item
-
-                data.put("sourceIcon", convertIcon(icon));
-
-                byte[] image = extractBitmap((Bitmap) mediaMetadata.getBitmap(MediaMetadata.METADATA_KEY_ART));
-                if (image == null) {
-                    image = extractBitmap((Bitmap) mediaMetadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART));
-                }
-                if (image != null) {
-                    data.put("image", image);
-                } else {
-                    String imageUri = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ART_URI);
-                    if (imageUri == null) {
-                        imageUri = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI);
+                // do the onerous imagey stuff only if we're on a new paused or playing media item,
+                // and someone's around to see it
+                // deferring marks the track pending under the same lock that
+                // setForeground flips under, so a resume can't slip between
+                final boolean deferArtwork;
+                synchronized (trackDataLock) {
+                    deferArtwork = !isForeground;
+                    if (deferArtwork) {
+                        deferredArtworkId = id;
+                        hasPendingTrack = true;
                     }
-                    data.put("imageUri", imageUri);
+                }
+                if (!deferArtwork) {
+                    addArtwork(data, mediaMetadata, icon, controller.getPackageName());
                 }
             }
 
@@ -413,6 +747,71 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
         }
     }
 
+    private void addArtwork(Map<String, Object> data, MediaMetadata mediaMetadata, Icon icon, String source) {
+        data.put("sourceIcon", convertIcon(icon));
+
+        String uri = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ART_URI);
+        if (uri == null) {
+            uri = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI);
+        }
+        final String imageUri = uri;
+
+        // shared per album and player where we can tell what the album is;
+        // otherwise (podcasts, radio, video) per artwork, or per track
+        final String artist = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
+        final String album = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
+        final String imageKey;
+        if (artist != null && album != null) {
+            imageKey = "track:" + source + ":" + artist + ":" + album;
+        } else if (imageUri != null) {
+            imageKey = imageUri;
+        } else {
+            imageKey = "track:" + source + ":" + deriveId(mediaMetadata);
+        }
+
+        // only the original is held on to here: larger variants are generated
+        // when asked for, and only the small one travels with the track
+        Bitmap bitmap = mediaMetadata.getBitmap(MediaMetadata.METADATA_KEY_ART);
+        if (bitmap == null) {
+            bitmap = mediaMetadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART);
+        }
+        // the version changes whenever the artwork behind the key does, so the
+        // Dart side knows not to keep serving images it loaded earlier
+        int imageVersion = 0;
+        if (bitmap != null) {
+            imageVersion = artworkVariants.register(imageKey, ArtworkVariants.of(bitmap));
+        } else if (imageUri != null && LocalArtworkLoader.isLocal(Uri.parse(imageUri))) {
+            imageVersion = artworkVariants.register(imageKey, ArtworkVariants.of(context, Uri.parse(imageUri)));
+        }
+
+        final byte[] image = artworkVariants.get(imageKey, ArtworkVariants.Variant.SMALL);
+        if (image != null) {
+            data.put("imageKey", imageKey);
+            data.put("imageVersion", imageVersion);
+            data.put("imageSmall", image);
+        } else {
+            data.put("imageUri", imageUri);
+        }
+    }
+
+    /** Adds the artwork skipped while backgrounded, if track `id` is still current */
+    private void addDeferredArtwork(String id, Map<String, Object> data) {
+        final MediaSession.Token token = currentToken;
+        if (context == null || token == null) {
+            return;
+        }
+
+        try {
+            final MediaController controller = new MediaController(context, token);
+            final MediaMetadata mediaMetadata = controller.getMetadata();
+            if (mediaMetadata != null && deriveId(mediaMetadata).equals(id)) {
+                addArtwork(data, mediaMetadata, currentIcon, controller.getPackageName());
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding deferred artwork", e);
+        }
+    }
+
     private String deriveId(MediaMetadata mediaMetadata) {
         final String album = mediaMetadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
         final String title = mediaMetadata.getString(MediaMetadata.METADATA_KEY_TITLE);
@@ -478,6 +877,8 @@ public class NowPlayingPlugin implements FlutterPlugin, MethodCallHandler, Activ
     public void onDetachedFromEngine(@NonNull FlutterPluginBinding binding) {
         Log.d(TAG, "Plugin detached from engine");
         stopPolling();
+        unwatchQueue(null);
+        artworkExecutor.shutdownNow();
         if (channel != null) {
             channel.setMethodCallHandler(null);
             channel = null;
@@ -0,0 +1,146 @@
+package com.gomes.nowplaying;
+
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The play queue of the active media session
+ *
+ * Rather than shipping the full queue on every change, each update is diffed
+ * against the previous one by queue id (see `QueueDiff`) and reduced to a
+ * list of operations for the channel. Some players reuse queue ids for
+ * different media, so items whose ids survive are also compared by content
+ *
+ * Each non-empty batch of operations bumps the queue's version, so that the
+ * Dart side can tell when it has missed one and needs to fetch it afresh
+ *
+ * Items never carry their artwork; that is loaded separately, on demand
+ */
+class NowPlayingQueue {
+    private List<MediaSession.QueueItem> items = new ArrayList<>();
+    private int version = 0;
+
+    /**
+     * Replaces the queue with `queue`, returning the operations needed to get
+     * from the previous queue to this one
+     */
+    List<Map<String, Object>> update(List<MediaSession.QueueItem> queue) {
+        final List<MediaSession.QueueItem> next = dedupe(queue);
+
+        final Map<Long, MediaSession.QueueItem> previousItems = new HashMap<>();
+        for (MediaSession.QueueItem item : items) previousItems.put(item.getQueueId(), item);
+
+        final Map<Long, MediaSession.QueueItem> nextItems = new HashMap<>();
+        final Set<Long> changed = new HashSet<>();
+        for (MediaSession.QueueItem item : next) {
+            nextItems.put(item.getQueueId(), item);
+            final MediaSession.QueueItem previous = previousItems.get(item.getQueueId());
+            if (previous != null && !sameContent(previous, item)) changed.add(item.getQueueId());
+        }
+
+        final List<Map<String, Object>> ops = new ArrayList<>();
+        for (QueueDiff.Op op : QueueDiff.diff(ids(items), ids(next), changed)) {
+            ops.add(toMap(op, nextItems.get(op.id)));
+        }
+
+        items = next;
+        if (!ops.isEmpty()) version++;
+        return ops;
+    }
+
+    int version() {
+        return version;
+    }
+
+    /** Returns up to `limit` items from the queue, starting at `offset` */
+    List<Map<String, Object>> page(int offset, int limit) {
+        final List<Map<String, Object>> page = new ArrayList<>();
+        final int start = Math.max(0, offset);
+        if (start >= items.size() || limit <= 0) return page;
+
+        final int end = start + Math.min(limit, items.size() - start);
+        for (int i = start; i < end; i++) {
+            page.add(toMap(items.get(i)));
+        }
+        return page;
+    }
+
+    MediaSession.QueueItem find(long queueId) {
+        for (MediaSession.QueueItem item : items) {
+            if (item.getQueueId() == queueId) return item;
+        }
+        return null;
+    }
+
+    static Map<String, Object> toMap(MediaSession.QueueItem item) {
+        final MediaDescription description = item.getDescription();
+        final Map<String, Object> data = new HashMap<>();
+        data.put("id", item.getQueueId());
+        data.put("mediaId", description.getMediaId());
+        data.put("title", toString(description.getTitle()));
+        data.put("subtitle", toString(description.getSubtitle()));
+        data.put("description", toString(description.getDescription()));
+        data.put("hasImage", description.getIconBitmap() != null || description.getIconUri() != null);
+        if (description.getIconUri() != null) {
+            data.put("imageUri", description.getIconUri().toString());
+        }
+        return data;
+    }
+
+    // bitmaps are compared by presence only, as each update carries fresh copies
+    private static boolean sameContent(MediaSession.QueueItem a, MediaSession.QueueItem b) {
+        final MediaDescription first = a.getDescription();
+        final MediaDescription second = b.getDescription();
+        return Objects.equals(first.getMediaId(), second.getMediaId())
+                && Objects.equals(toString(first.getTitle()), toString(second.getTitle()))
+                && Objects.equals(toString(first.getSubtitle()), toString(second.getSubtitle()))
+                && Objects.equals(toString(first.getDescription()), toString(second.getDescription()))
+                && Objects.equals(first.getIconUri(), second.getIconUri())
+                && (first.getIconBitmap() == null) == (second.getIconBitmap() == null);
+    }
+
+    private static String toString(CharSequence text) {
+        return text == null ? null : text.toString();
+    }
+
+    // players occasionally repeat a queue id; only the first occurrence counts
+    private static List<MediaSession.QueueItem> dedupe(List<MediaSession.QueueItem> queue) {
+        final List<MediaSession.QueueItem> deduped = new ArrayList<>();
+        if (queue == null) return deduped;
+
+        final Set<Long> ids = new HashSet<>();
+        for (MediaSession.QueueItem item : queue) {
+            if (item != null && ids.add(item.getQueueId())) deduped.add(item);
+        }
+        return deduped;
+    }
+
+    private static List<Long> ids(List<MediaSession.QueueItem> items) {
+        final List<Long> ids = new ArrayList<>();
+        for (MediaSession.QueueItem item : items) ids.add(item.getQueueId());
+        return ids;
+    }
+
+    private static Map<String, Object> toMap(QueueDiff.Op op, MediaSession.QueueItem item) {
+        final Map<String, Object> data = new HashMap<>();
+        data.put("op", op.type);
+        data.put("id", op.id);
+        if (QueueDiff.OP_MOVE.equals(op.type)) {
+            data.put("from", op.from);
+            data.put("to", op.index);
+        } else {
+            data.put("index", op.index);
+        }
+        if (QueueDiff.OP_INSERT.equals(op.type) || QueueDiff.OP_UPDATE.equals(op.type)) {
+            data.put("item", toMap(item));
+        }
+        return data;
+    }
+}
@@ -0,0 +1,139 @@
+package com.gomes.nowplaying;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reduces the change from one list of queue ids to another to a list of
+ * operations which, applied in order, turn the first into the second:
+ *
+ *   - remove: the item at `index` is removed
+ *   - move:   the item at `from` is removed, then reinserted at `index`
+ *   - insert: the item `id` is inserted at `index`
+ *   - update: the item at `index` is replaced by a newer version of itself
+ *
+ * Both lists are expected to be free of duplicates
+ */
+final class QueueDiff {
+    static final String OP_REMOVE = "remove";
+    static final String OP_MOVE = "move";
+    static final String OP_INSERT = "insert";
+    static final String OP_UPDATE = "update";
+
+    static final class Op {
+        final String type;
+        final int index;
+        final int from;
+        final long id;
+
+        Op(String type, int index, int from, long id) {
+            this.type = type;
+            this.index = index;
+            this.from = from;
+            this.id = id;
+        }
+    }
+
+    private QueueDiff() {}
+
+    /**
+     * Returns the operations turning `previous` into `next`, where `changed`
+     * holds the ids of surviving items whose contents have changed
+     */
+    static List<Op> diff(List<Long> previous, List<Long> next, Set<Long> changed) {
+        final List<Op> ops = new ArrayList<>();
+
+        final Map<Long, Integer> nextIndices = new HashMap<>();
+        for (int i = 0; i < next.size(); i++) {
+            nextIndices.put(next.get(i), i);
+        }
+
+        // removals, from the back so that indices stay valid as we go
+        final List<Long> working = new ArrayList<>(previous);
+        for (int i = working.size() - 1; i >= 0; i--) {
+            if (!nextIndices.containsKey(working.get(i))) {
+                ops.add(new Op(OP_REMOVE, i, -1, working.remove(i)));
+            }
+        }
+
+        // moves: the longest run of surviving items already in the right order
+        // stays put, and everything else is moved to follow its predecessor
+        final int[] targets = new int[working.size()];
+        for (int i = 0; i < working.size(); i++) targets[i] = nextIndices.get(working.get(i));
+        final Set<Long> settled = new HashSet<>();
+        for (int i : longestIncreasingRun(targets)) settled.add(working.get(i));
+
+        final Set<Long> surviving = new HashSet<>(working);
+        final List<Long> kept = new ArrayList<>();
+        for (Long id : next) {
+            if (surviving.contains(id)) kept.add(id);
+        }
+        for (int i = 0; i < kept.size(); i++) {
+            final Long id = kept.get(i);
+            if (settled.contains(id)) continue;
+
+            final int from = working.indexOf(id);
+            working.remove(from);
+            final int to = i == 0 ? 0 : working.indexOf(kept.get(i - 1)) + 1;
+            working.add(to, id);
+            settled.add(id);
+            if (from != to) ops.add(new Op(OP_MOVE, to, from, id));
+        }
+
+        // insertions, from the front so that each lands at its final index
+        for (int i = 0; i < next.size(); i++) {
+            final Long id = next.get(i);
+            if (i < working.size() && working.get(i).equals(id)) continue;
+            working.add(i, id);
+            ops.add(new Op(OP_INSERT, i, -1, id));
+        }
+
+        // everything is now in its final place
+        for (int i = 0; i < next.size(); i++) {
+            final Long id = next.get(i);
+            if (surviving.contains(id) && changed.contains(id)) {
+                ops.add(new Op(OP_UPDATE, i, -1, id));
+            }
+        }
+
+        return ops;
+    }
+
+    static List<Op> diff(List<Long> previous, List<Long> next) {
+        return diff(previous, next, Collections.emptySet());
+    }
+
+    // indices into `values` of one of its longest strictly increasing subsequences
+    private static int[] longestIncreasingRun(int[] values) {
+        final int[] tails = new int[values.length];
+        final int[] previous = new int[values.length];
+        int length = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) length++;
+        }
+
+        final int[] run = new int[length];
+        for (int i = length - 1, k = length > 0 ? tails[length - 1] : -1; i >= 0; i--, k = previous[k]) {
+            run[i] = k;
+        }
+        return run;
+    }
+}
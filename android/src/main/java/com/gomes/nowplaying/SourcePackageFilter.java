@@ -0,0 +1,69 @@
+package com.gomes.nowplaying;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which source packages the listener service should pay attention to
+ *
+ * The lists are persisted in shared preferences by the plugin, and the service
+ * keeps an in-memory copy which is refreshed whenever they change, so checking
+ * a package is only ever a set lookup
+ *
+ * A package is accepted unless it is denied or, if any packages are allowed,
+ * it is not one of them
+ *
+ * `onChange` is run, on the main thread, after the lists have been reloaded
+ */
+class SourcePackageFilter {
+    private static final String PREFERENCES = "com.gomes.nowplaying.filter";
+    private static final String KEY_ALLOWED = "allowed";
+    private static final String KEY_DENIED = "denied";
+
+    private final SharedPreferences preferences;
+    private final Runnable onChange;
+    private volatile Set<String> allowed = Collections.emptySet();
+    private volatile Set<String> denied = Collections.emptySet();
+
+    // held strongly, as shared preferences only keep a weak reference to it
+    private final SharedPreferences.OnSharedPreferenceChangeListener listener;
+
+    SourcePackageFilter(Context context, Runnable onChange) {
+        this.onChange = onChange;
+        listener = (prefs, key) -> {
+            reload();
+            this.onChange.run();
+        };
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        preferences.registerOnSharedPreferenceChangeListener(listener);
+        reload();
+    }
+
+    boolean accepts(String packageName) {
+        if (packageName == null) return true;
+        if (denied.contains(packageName)) return false;
+        return allowed.isEmpty() || allowed.contains(packageName);
+    }
+
+    void close() {
+        preferences.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    private void reload() {
+        allowed = new HashSet<>(preferences.getStringSet(KEY_ALLOWED, Collections.emptySet()));
+        denied = new HashSet<>(preferences.getStringSet(KEY_DENIED, Collections.emptySet()));
+    }
+
+    /** Persists new lists; a null list is treated as empty */
+    static void save(Context context, Collection<String> allowed, Collection<String> denied) {
+        context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+                .edit()
+                .putStringSet(KEY_ALLOWED, allowed != null ? new HashSet<>(allowed) : new HashSet<>())
+                .putStringSet(KEY_DENIED, denied != null ? new HashSet<>(denied) : new HashSet<>())
+                .apply();
+    }
+}
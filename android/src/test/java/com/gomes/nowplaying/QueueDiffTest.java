@@ -0,0 +1,104 @@
+package com.gomes.nowplaying;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class QueueDiffTest {
+    @Test
+    public void emptyToFull_insertsEverything() {
+        final List<QueueDiff.Op> ops = assertRoundTrip(ids(), ids(1, 2, 3));
+        assertEquals(3, ops.size());
+        for (QueueDiff.Op op : ops) assertEquals(QueueDiff.OP_INSERT, op.type);
+    }
+
+    @Test
+    public void fullToEmpty_removesEverything() {
+        final List<QueueDiff.Op> ops = assertRoundTrip(ids(1, 2, 3), ids());
+        assertEquals(3, ops.size());
+        for (QueueDiff.Op op : ops) assertEquals(QueueDiff.OP_REMOVE, op.type);
+    }
+
+    @Test
+    public void unchanged_producesNothing() {
+        assertEquals(0, assertRoundTrip(ids(1, 2, 3), ids(1, 2, 3)).size());
+    }
+
+    @Test
+    public void singleItemMovedToEnd_isOneMove() {
+        final List<QueueDiff.Op> ops = assertRoundTrip(ids(1, 2, 3, 4), ids(2, 3, 4, 1));
+        assertEquals(1, ops.size());
+        assertEquals(QueueDiff.OP_MOVE, ops.get(0).type);
+    }
+
+    @Test
+    public void reversal_isRoundTripped() {
+        assertRoundTrip(ids(1, 2, 3, 4, 5), ids(5, 4, 3, 2, 1));
+    }
+
+    @Test
+    public void mixedRemoveMoveInsert_isRoundTripped() {
+        assertRoundTrip(ids(1, 2, 3, 4, 5, 6), ids(7, 5, 2, 8, 1, 6));
+    }
+
+    @Test
+    public void changedItems_areUpdatedAtTheirFinalIndex() {
+        final Set<Long> changed = new HashSet<>(ids(2));
+        final List<QueueDiff.Op> ops = QueueDiff.diff(ids(1, 2, 3), ids(3, 2, 1), changed);
+        final QueueDiff.Op update = ops.get(ops.size() - 1);
+        assertEquals(QueueDiff.OP_UPDATE, update.type);
+        assertEquals(1, update.index);
+        assertEquals(2, update.id);
+    }
+
+    @Test
+    public void randomQueues_areRoundTripped() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            assertRoundTrip(randomIds(random), randomIds(random));
+        }
+    }
+
+    private static List<QueueDiff.Op> assertRoundTrip(List<Long> previous, List<Long> next) {
+        final List<QueueDiff.Op> ops = QueueDiff.diff(previous, next);
+        final List<Long> queue = new ArrayList<>(previous);
+        for (QueueDiff.Op op : ops) {
+            switch (op.type) {
+                case QueueDiff.OP_REMOVE:
+                    assertEquals(op.id, (long) queue.remove(op.index));
+                    break;
+                case QueueDiff.OP_MOVE:
+                    final Long id = queue.remove(op.from);
+                    assertEquals(op.id, (long) id);
+                    queue.add(op.index, id);
+                    break;
+                case QueueDiff.OP_INSERT:
+                    queue.add(op.index, op.id);
+                    break;
+            }
+        }
+        assertEquals(next, queue);
+        return ops;
+    }
+
+    private static List<Long> randomIds(Random random) {
+        final List<Long> ids = new ArrayList<>();
+        for (long id = 0; id < 15; id++) {
+            if (random.nextBoolean()) ids.add(id);
+        }
+        Collections.shuffle(ids, random);
+        return ids;
+    }
+
+    private static List<Long> ids(long... values) {
+        final List<Long> ids = new ArrayList<>();
+        for (long value : values) ids.add(value);
+        return ids;
+    }
+}
@@ -5,6 +5,7 @@
 /// information from the systemMusicPlayer for iOS
 
 import 'dart:async';
+import 'dart:collection';
 import 'dart:io';
 
 import 'package:flutter/foundation.dart';
@@ -15,6 +16,8 @@ import 'package:package_info_plus/package_info_plus.dart';
 import 'package:path_provider/path_provider.dart';
 import 'package:shared_preferences/shared_preferences.dart';
 
+import 'nowplaying_artwork.dart';
+import 'nowplaying_queue.dart';
 import 'nowplaying_track.dart';
 import 'resolvers/nowplaying_image_resolver.dart';
 
@@ -44,6 +47,17 @@ class NowPlaying with WidgetsBindingObserver {
 
   late StreamController<NowPlayingTrack> _controller;
   Stream<NowPlayingTrack> get stream => _controller.stream;
+
+  /// The active player's play queue, kept up to date on Android
+  ///
+  /// A read-only view; changes arrive from the player via `queueStream`
+  late final List<NowPlayingQueueItem> upNext = UnmodifiableListView(_upNext);
+  final List<NowPlayingQueueItem> _upNext = [];
+  static const _maxQueueLength = 0x7fffffff;
+  int? _queueVersion;
+  bool _isResyncingQueue = false;
+  late StreamController<List<NowPlayingQueueItem>> _queueController;
+  Stream<List<NowPlayingQueueItem>> get queueStream => _queueController.stream;
   bool _resolveImages = false;
 
   /// Starts the service.
@@ -61,6 +75,8 @@ class NowPlaying with WidgetsBindingObserver {
     _controller = StreamController<NowPlayingTrack>.broadcast();
     _controller.add(track);
 
+    _queueController = StreamController<List<NowPlayingQueueItem>>.broadcast();
+
     this._resolveImages = resolver != null || resolveImages;
     this.resolver =
         resolver ?? (_resolveImages ? DefaultNowPlayingImageResolver() : null);
@@ -73,7 +89,10 @@ class NowPlaying with WidgetsBindingObserver {
     }
 
     _bindToWidgetsBinding();
-    if (isAndroid) _channel.setMethodCallHandler(_handler);
+    if (isAndroid) {
+      _channel.setMethodCallHandler(_handler);
+      _resyncQueue();
+    }
     _refreshTimer = Timer.periodic(_refreshPeriod, _refresh);
 
     final info = await PackageInfo.fromPlatform();
@@ -87,6 +106,9 @@ class NowPlaying with WidgetsBindingObserver {
   /// Kills stream, timer and method call handler
   void stop() {
     _controller.close();
+    _queueController.close();
+    _upNext.clear();
+    _queueVersion = null;
 
     resolver = null;
 
@@ -140,11 +162,135 @@ class NowPlaying with WidgetsBindingObserver {
     return true;
   }
 
+  /// Restricts the players that tracks are reported for, by package name
+  ///
+  /// Players in `denied` are always ignored; if `allowed` is not empty, any
+  /// player not in it is ignored too. The lists are persisted, and applied
+  /// by the Android notification listener itself, so that ignored players
+  /// cost nothing. Passing neither list clears the filter
+  ///
+  /// Does nothing on iOS
+  Future<void> setSourceFilter({
+    List<String> allowed = const [],
+    List<String> denied = const [],
+  }) async {
+    if (!isAndroid) return;
+    await _channel.invokeMethod<bool>(
+        'setSourceFilter', {'allowed': allowed, 'denied': denied});
+  }
+
+  /// Returns up to `limit` items of the play queue, starting at `offset`
+  ///
+  /// Always empty on iOS
+  Future<List<NowPlayingQueueItem>> queue({
+    int offset = 0,
+    int limit = 50,
+  }) async {
+    if (!isAndroid) return [];
+
+    final data = await _channel.invokeMethod<Map<dynamic, dynamic>>(
+        'queue', {'offset': offset, 'limit': limit});
+    return _queueItemsFrom(data);
+  }
+
+  List<NowPlayingQueueItem> _queueItemsFrom(Map<dynamic, dynamic>? data) =>
+      List<dynamic>.from(data?['items'] ?? [])
+          .map((item) =>
+              NowPlayingQueueItem.fromJson(Map<String, dynamic>.from(item)))
+          .toList();
+
+  /// Replaces `upNext` with the full queue, when it can't be patched
+  Future<void> _resyncQueue() async {
+    if (_isResyncingQueue) return;
+    _isResyncingQueue = true;
+    _queueVersion = null;
+
+    try {
+      final data = await _channel.invokeMethod<Map<dynamic, dynamic>>(
+          'queue', {'offset': 0, 'limit': _maxQueueLength});
+      _upNext
+        ..clear()
+        ..addAll(_queueItemsFrom(data));
+      _queueVersion = data?['version'];
+      if (!_queueController.isClosed) {
+        _queueController.add(List.unmodifiable(_upNext));
+      }
+    } catch (e) {
+      print('NowPlaying - could not fetch queue: $e');
+    } finally {
+      _isResyncingQueue = false;
+    }
+  }
+
+  /// Applies a batch of queue operations, if it follows on from the last one
+  /// applied; otherwise, or if it doesn't fit, fetches the queue afresh
+  void _updateQueue(List<dynamic> ops, int version) {
+    if (_isResyncingQueue) return;
+
+    final current = _queueVersion;
+    if (current != null && version <= current) return;
+    if (current == null || version != current + 1) {
+      _resyncQueue();
+      return;
+    }
+
+    try {
+      NowPlayingQueueItem.applyOps(_upNext, ops);
+      _queueVersion = version;
+      _queueController.add(List.unmodifiable(_upNext));
+    } catch (e) {
+      _resyncQueue();
+    }
+  }
+
+  /// Returns the encoded artwork for a queue item, if there is any
+  Future<Uint8List?> queueArtwork(
+    int id, {
+    NowPlayingArtworkSize size = NowPlayingArtworkSize.medium,
+  }) async {
+    if (!isAndroid) return null;
+    return _channel
+        .invokeMethod<Uint8List>('queueArtwork', {'id': id, 'size': size.name});
+  }
+
+  /// Returns the encoded artwork for a track's `key`, at `size`
+  ///
+  /// Generated on first request and cached natively; prefer
+  /// `NowPlayingTrack.imageFor`, which only calls this when an image is shown
+  Future<Uint8List?> artwork(
+    String key, {
+    NowPlayingArtworkSize size = NowPlayingArtworkSize.large,
+  }) async {
+    if (!isAndroid) return null;
+    final bytes = await _channel
+        .invokeMethod<Uint8List>('artwork', {'key': key, 'size': size.name});
+
+    // the plugin only holds on to so much artwork; once it has let this go,
+    // stop offering it, so the track can fall back or be resolved instead
+    final isMissing = bytes == null || bytes.isEmpty;
+    if (isMissing && NowPlayingTrack.forgetArtwork(key)) {
+      _onArtworkForgotten();
+    }
+    return bytes;
+  }
+
+  void _onArtworkForgotten() {
+    if (_controller.isClosed) return;
+    if (_resolveImages && track.imageNeedsResolving) {
+      _resolveImageFor(track);
+    } else {
+      this.track = track.copy();
+      _controller.add(this.track);
+    }
+  }
+
   // Android
   Future<dynamic> _handler(MethodCall call) async {
     if (call.method == 'track') {
       final data = Map<String, Object?>.from(call.arguments[0] ?? {});
       _androidTrack = NowPlayingTrack.fromJson(data);
+    } else if (call.method == 'queue') {
+      _updateQueue(call.arguments[0] ?? [], call.arguments[1] ?? 0);
     }
     return true;
   }
@@ -0,0 +1,68 @@
+import 'dart:ui' as ui;
+
+import 'package:flutter/foundation.dart';
+import 'package:flutter/painting.dart';
+
+import 'nowplaying.dart';
+
+/// The sizes artwork can be requested at, on Android
+///
+/// Roughly: `small` for lists, `medium` for mini-players, `large` for
+/// full-screen views
+enum NowPlayingArtworkSize { small, medium, large }
+
+/// An `ImageProvider` for a track's artwork at a given size
+///
+/// Nothing is fetched until the image is first resolved, e.g. by an `Image`
+/// widget; the variant is then generated, encoded and cached natively, so
+/// sizes that are never shown are never produced
+///
+/// `version` changes whenever the artwork behind `key` does, so that images
+/// cached for the old artwork are not mistaken for the new
+@immutable
+class NowPlayingArtworkImage extends ImageProvider<NowPlayingArtworkImage> {
+  final String key;
+  final NowPlayingArtworkSize size;
+  final int version;
+
+  const NowPlayingArtworkImage(this.key, this.size, {this.version = 0});
+
+  @override
+  Future<NowPlayingArtworkImage> obtainKey(ImageConfiguration configuration) =>
+      SynchronousFuture<NowPlayingArtworkImage>(this);
+
+  @override
+  ImageStreamCompleter loadImage(
+    NowPlayingArtworkImage key,
+    ImageDecoderCallback decode,
+  ) =>
+      MultiFrameImageStreamCompleter(
+        codec: _loadAsync(key, decode),
+        scale: 1.0,
+        debugLabel: '$key',
+      );
+
+  Future<ui.Codec> _loadAsync(
+    NowPlayingArtworkImage key,
+    ImageDecoderCallback decode,
+  ) async {
+    final bytes = await NowPlaying.instance.artwork(key.key, size: key.size);
+    if (bytes == null || bytes.isEmpty) {
+      throw StateError('No ${key.size.name} artwork available for ${key.key}');
+    }
+    return decode(await ui.ImmutableBuffer.fromUint8List(bytes));
+  }
+
+  @override
+  bool operator ==(Object other) =>
+      other is NowPlayingArtworkImage &&
+      other.key == this.key &&
+      other.size == this.size &&
+      other.version == this.version;
+
+  @override
+  int get hashCode => Object.hash(key, size, version);
+
+  @override
+  String toString() => 'NowPlayingArtworkImage($key, ${size.name}, v$version)';
+}
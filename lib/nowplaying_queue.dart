@@ -0,0 +1,96 @@
+import 'dart:typed_data';
+
+import 'package:flutter/widgets.dart';
+
+import 'nowplaying.dart';
+import 'nowplaying_artwork.dart';
+
+/// A single item in the active player's play queue
+///
+/// Title, subtitle, description; artwork is loaded lazily via `loadImage`
+class NowPlayingQueueItem {
+  final int id;
+  final String? mediaId;
+  final String? title;
+  final String? subtitle;
+  final String? description;
+  final String? imageUri;
+
+  /// true if the player has supplied artwork for this item, else false
+  final bool hasImage;
+
+  final Map<NowPlayingArtworkSize, ImageProvider> _images = {};
+
+  NowPlayingQueueItem({
+    required this.id,
+    this.mediaId,
+    this.title,
+    this.subtitle,
+    this.description,
+    this.imageUri,
+    this.hasImage = false,
+  });
+
+  /// Creates a queue item from json
+  factory NowPlayingQueueItem.fromJson(Map<String, dynamic> json) =>
+      NowPlayingQueueItem(
+        id: json['id'],
+        mediaId: json['mediaId'],
+        title: json['title'],
+        subtitle: json['subtitle'],
+        description: json['description'],
+        imageUri: json['imageUri'],
+        hasImage: json['hasImage'] ?? false,
+      );
+
+  /// The artwork for the item at `size`, if it has been loaded
+  ImageProvider? imageFor(NowPlayingArtworkSize size) => _images[size];
+
+  /// Loads the artwork for the item from the player, if there is any
+  ///
+  /// Artwork is fetched only when asked for, and cached natively, so that
+  /// long queues don't drag every image across the channel up front
+  Future<ImageProvider?> loadImage({
+    NowPlayingArtworkSize size = NowPlayingArtworkSize.medium,
+  }) async {
+    if (_images.containsKey(size) || !hasImage) return _images[size];
+
+    final Uint8List? data =
+        await NowPlaying.instance.queueArtwork(id, size: size);
+    if (data is Uint8List) {
+      _images[size] = MemoryImage(data);
+    } else if (imageUri?.startsWith('https://') == true) {
+      _images[size] = NetworkImage(imageUri!);
+    }
+    return _images[size];
+  }
+
+  /// Applies a list of `insert`/`remove`/`move`/`update` operations, as sent
+  /// by the plugin, to `queue`
+  static void applyOps(List<NowPlayingQueueItem> queue, List<dynamic> ops) {
+    for (final op in ops) {
+      final data = Map<String, dynamic>.from(op);
+      switch (data['op']) {
+        case 'insert':
+          final item = Map<String, dynamic>.from(data['item']);
+          queue.insert(data['index'], NowPlayingQueueItem.fromJson(item));
+          break;
+        case 'remove':
+          queue.removeAt(data['index']);
+          break;
+        case 'move':
+          queue.insert(data['to'], queue.removeAt(data['from']));
+          break;
+        case 'update':
+          final item = Map<String, dynamic>.from(data['item']);
+          queue[data['index']] = NowPlayingQueueItem.fromJson(item);
+          break;
+      }
+    }
+  }
+
+  String toString() => 'NowPlayingQueueItem:'
+      'id: $id; '
+      'title: $title; '
+      'subtitle: $subtitle';
+}
@@ -4,6 +4,7 @@ import 'package:flutter/widgets.dart';
 import 'package:uuid/uuid.dart';
 
 import 'nowplaying.dart';
+import 'nowplaying_artwork.dart';
 
 enum _NowPlayingImageResolutionState { unresolved, resolving, resolved }
 
@@ -17,6 +18,7 @@ class NowPlayingTrack {
   static final _essentialRegExp = RegExp(r'\(.*\)|\[.*\]');
 
   static final _images = _LruMap<String, ImageProvider?>(size: 3);
+  static final _thumbnails = _LruMap<String, ImageProvider?>(size: 3);
   static final _resolutionStates =
       _LruMap<String, _NowPlayingImageResolutionState?>(size: 3);
   static final _icons = _LruMap<String?, ImageProvider>();
@@ -90,6 +92,42 @@ class NowPlayingTrack {
   ImageProvider? get image => _images[_imageId];
   set image(ImageProvider? image) => _images[_imageId] = image;
 
+  /// A small version of `image`, suitable for lists; on Android this arrives
+  /// with the track itself, so is available immediately
+  ImageProvider? get thumbnail => _thumbnails[_imageId] ?? image;
+
+  /// The image for the track at a given size
+  ///
+  /// On Android, medium and large images are only generated once they are
+  /// actually shown, falling back to the small one should they no longer be
+  /// available; elsewhere, and for resolved images, this is `image`
+  ImageProvider? imageFor(NowPlayingArtworkSize size) {
+    final image = this.image;
+    if (size == NowPlayingArtworkSize.small) return thumbnail;
+    if (image is NowPlayingArtworkImage) {
+      return NowPlayingArtworkImage(image.key, size, version: image.version);
+    }
+    return image ?? _thumbnails[_imageId];
+  }
+
+  /// Forgets artwork that the plugin can no longer supply, so that tracks
+  /// using it report no image and can be resolved afresh
+  ///
+  /// Returns true if any track was using it
+  static bool forgetArtwork(String key) {
+    var forgotten = false;
+    for (final imageId in _images.keys) {
+      final image = _images[imageId];
+      if (image is NowPlayingArtworkImage && image.key == key) {
+        _images.remove(imageId);
+        _resolutionStates[imageId] =
+            _NowPlayingImageResolutionState.unresolved;
+        forgotten = true;
+      }
+    }
+    return forgotten;
+  }
+
   _NowPlayingImageResolutionState? get _resolutionState =>
       _resolutionStates[_imageId];
   set _resolutionState(_NowPlayingImageResolutionState? state) =>
@@ -121,10 +159,27 @@ class NowPlayingTrack {
 
     final String imageId = '${json['artist']}:${json['album']}';
 
-    if (!_images.containsKey(imageId)) {
+    // tracks without an artist or album share an image id, but not artwork,
+    // and the artwork behind a key can itself change
+    final String? imageKey = json['imageKey'];
+    final int imageVersion = json['imageVersion'] ?? 0;
+    final cachedImage = _images[imageId];
+    final isStale = imageKey is String &&
+        cachedImage is NowPlayingArtworkImage &&
+        (cachedImage.key != imageKey || cachedImage.version != imageVersion);
+
+    if (!_images.containsKey(imageId) || isStale) {
       final Uint8List? imageData = json['image'];
       if (imageData is Uint8List) {
         _images[imageId] = MemoryImage(imageData);
+      } else if (imageKey is String) {
+        _images[imageId] =
+            NowPlayingArtworkImage(imageKey, NowPlayingArtworkSize.large,
+                version: imageVersion);
+        final Uint8List? thumbnailData = json['imageSmall'];
+        if (thumbnailData is Uint8List) {
+          _thumbnails[imageId] = MemoryImage(thumbnailData);
+        }
       } else {
         final String? imageUri = json['imageUri'];
         if (imageUri?.startsWith('https://') == true) {
@@ -217,4 +272,6 @@ class _LruMap<K, V> {
   }
 
   bool containsKey(K key) => _map.containsKey(key);
+
+  List<K> get keys => List.unmodifiable(_keys);
 }
@@ -0,0 +1,97 @@
+import 'package:flutter_test/flutter_test.dart';
+import 'package:nowplaying/nowplaying_queue.dart';
+
+// op lists as produced by the Android plugin's QueueDiff for each change
+void main() {
+  List<NowPlayingQueueItem> queueOf(List<int> ids) =>
+      ids.map((id) => NowPlayingQueueItem(id: id, title: 'track $id')).toList();
+
+  List<int> idsOf(List<NowPlayingQueueItem> queue) =>
+      queue.map((item) => item.id).toList();
+
+  Map<String, dynamic> insert(int index, int id) => {
+        'op': 'insert',
+        'index': index,
+        'id': id,
+        'item': {'id': id, 'title': 'track $id', 'hasImage': false},
+      };
+
+  Map<String, dynamic> remove(int index, int id) =>
+      {'op': 'remove', 'index': index, 'id': id};
+
+  Map<String, dynamic> move(int from, int to, int id) =>
+      {'op': 'move', 'from': from, 'to': to, 'id': id};
+
+  group('NowPlayingQueueItem.applyOps', () {
+    test('fills an empty queue', () {
+      final queue = queueOf([]);
+      NowPlayingQueueItem.applyOps(
+          queue, [insert(0, 1), insert(1, 2), insert(2, 3)]);
+      expect(idsOf(queue), [1, 2, 3]);
+      expect(queue[1].title, 'track 2');
+    });
+
+    test('empties a full queue', () {
+      final queue = queueOf([1, 2, 3]);
+      NowPlayingQueueItem.applyOps(
+          queue, [remove(2, 3), remove(1, 2), remove(0, 1)]);
+      expect(idsOf(queue), isEmpty);
+    });
+
+    test('moves a single item to the end', () {
+      final queue = queueOf([1, 2, 3, 4]);
+      NowPlayingQueueItem.applyOps(queue, [move(0, 3, 1)]);
+      expect(idsOf(queue), [2, 3, 4, 1]);
+    });
+
+    test('reverses a queue', () {
+      final queue = queueOf([1, 2, 3, 4]);
+      NowPlayingQueueItem.applyOps(
+          queue, [move(2, 3, 3), move(1, 3, 2), move(0, 3, 1)]);
+      expect(idsOf(queue), [4, 3, 2, 1]);
+    });
+
+    test('updates moved items at their final index', () {
+      final queue = queueOf([1, 2, 3]);
+      NowPlayingQueueItem.applyOps(queue, [
+        move(0, 2, 1),
+        {
+          'op': 'update',
+          'index': 2,
+          'id': 1,
+          'item': {'id': 1, 'title': 'another track', 'hasImage': false},
+        },
+      ]);
+      expect(idsOf(queue), [2, 3, 1]);
+      expect(queue[2].title, 'another track');
+      expect(queue[0].title, 'track 2');
+    });
+
+    test('replaces items whose id is reused for new content', () {
+      final queue = queueOf([1, 2]);
+      NowPlayingQueueItem.applyOps(queue, [
+        {
+          'op': 'update',
+          'index': 1,
+          'id': 2,
+          'item': {'id': 2, 'title': 'another track', 'hasImage': false},
+        },
+      ]);
+      expect(idsOf(queue), [1, 2]);
+      expect(queue[1].title, 'another track');
+    });
+
+    test('applies mixed removes, moves and inserts in order', () {
+      final queue = queueOf([1, 2, 3, 4, 5, 6]);
+      NowPlayingQueueItem.applyOps(queue, [
+        remove(3, 4),
+        remove(2, 3),
+        move(1, 2, 2),
+        move(0, 2, 1),
+        insert(0, 7),
+        insert(3, 8),
+      ]);
+      expect(idsOf(queue), [7, 5, 2, 8, 1, 6]);
+    });
+  });
+}